@@ -1,5 +1,9 @@
 package com.example.demo;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import jakarta.validation.Valid;
@@ -20,6 +24,9 @@ import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.*;
 import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.EnableScheduling;
@@ -30,11 +37,17 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 @SpringBootApplication
@@ -76,9 +89,14 @@ public class DemoApplication implements CommandLineRunner {
 @RequestMapping("/api")
 class SampleController {
 
+    private static final int MAX_LIMIT = 1000;
+
     @Autowired
     private SampleService sampleService;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
     @GetMapping("/hello")
     public String hello(@RequestParam(defaultValue = "World") String name) {
         return sampleService.greet(name);
@@ -89,9 +107,49 @@ class SampleController {
         return sampleService.createUser(user);
     }
 
+    /**
+     * Without a limit, streams every user as one JSON array straight from the repository, so memory
+     * stays flat however many users there are. With a limit, returns one page of users with ids
+     * after the cursor; pass the page's nextCursor to get the next one.
+     */
     @GetMapping("/users")
-    public List<User> getAllUsers() {
-        return sampleService.getAllUsers();
+    public ResponseEntity<?> getAllUsers(@RequestParam(required = false) Long cursor,
+                                         @RequestParam(required = false) Integer limit) {
+        if (limit != null) {
+            return ResponseEntity.ok(sampleService.getUsersPage(cursor, checkLimit(limit)));
+        }
+        // writeValue flushes after every value by default; only the batch flush below should
+        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator json = writer.createGenerator(out)) {
+                json.writeStartArray();
+                int written = 0;
+                for (User user : sampleService.getAllUsersAfter(cursor)) {
+                    writer.writeValue(json, user);
+                    if (++written % 1000 == 0) json.flush();
+                }
+                json.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    @GetMapping("/users/by-name")
+    public List<User> getUsersByNamePrefix(@RequestParam String prefix,
+                                           @RequestParam(defaultValue = "100") int limit) {
+        return sampleService.findByNamePrefix(prefix, checkLimit(limit));
+    }
+
+    @GetMapping("/users/by-age")
+    public List<User> getUsersByAge(@RequestParam int min, @RequestParam int max,
+                                    @RequestParam(defaultValue = "100") int limit) {
+        return sampleService.findByAgeBetween(min, max, checkLimit(limit));
+    }
+
+    /** Rejects a limit below 1 with 400; larger limits than MAX_LIMIT are cut down to it. */
+    private static int checkLimit(int limit) {
+        if (limit < 1) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be at least 1");
+        return Math.min(limit, MAX_LIMIT);
     }
 }
 
@@ -122,6 +180,22 @@ class SampleService {
         return userRepository.findAll();
     }
 
+    public Iterable<User> getAllUsersAfter(Long cursor) {
+        return userRepository.iterateAfter(cursor);
+    }
+
+    public UserPage getUsersPage(Long cursor, int limit) {
+        return userRepository.findPage(cursor, limit);
+    }
+
+    public List<User> findByNamePrefix(@NotBlank String prefix, int limit) {
+        return userRepository.findByNamePrefix(prefix, limit);
+    }
+
+    public List<User> findByAgeBetween(int minAge, int maxAge, int limit) {
+        return userRepository.findByAgeBetween(minAge, maxAge, limit);
+    }
+
     public void printProfile() {
         String active = env.getActiveProfiles().length > 0 ? env.getActiveProfiles()[0] : "default";
         System.out.println("Active profile: " + active);
@@ -145,20 +219,51 @@ class AsyncService {
 }
 
 // ---------- REPOSITORY ----------
+/**
+ * Users ordered by id, plus secondary indexes on name (case-insensitive, for prefix queries) and age
+ * (for range queries). The store keeps its own copy of each saved user so the indexes cannot go stale
+ * when a caller mutates the object afterwards; treat returned users as read-only and save() changes.
+ * Reads are lock-free; writes are serialized so a user and its index entries change together.
+ */
 @Repository
 class UserRepository {
 
-    private final Map<Long, User> storage = new ConcurrentHashMap<>();
-    private long counter = 1;
+    /** Index entry: the indexed value, then the id to keep equal values apart. */
+    private record NameKey(String name, long id) implements Comparable<NameKey> {
+        public int compareTo(NameKey o) {
+            int c = name.compareTo(o.name);
+            return (c != 0) ? c : Long.compare(id, o.id);
+        }
+    }
+
+    private record AgeKey(int age, long id) implements Comparable<AgeKey> {
+        public int compareTo(AgeKey o) {
+            int c = Integer.compare(age, o.age);
+            return (c != 0) ? c : Long.compare(id, o.id);
+        }
+    }
 
-    public User save(User user) {
+    private final ConcurrentNavigableMap<Long, User> storage = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<NameKey> byName = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<AgeKey> byAge = new ConcurrentSkipListSet<>();
+    private final AtomicLong counter = new AtomicLong(1);
+
+    public synchronized User save(User user) {
         if (user.getId() == null) {
-            user.setId(counter++);
+            user.setId(counter.getAndIncrement());
+        }
+        User stored = new User(user.getId(), user.getName(), user.getAge());
+        User previous = storage.put(stored.getId(), stored);
+        if (previous != null) {
+            byName.remove(nameKey(previous));
+            if (previous.getAge() != null) byAge.remove(ageKey(previous));
         }
-        storage.put(user.getId(), user);
+        byName.add(nameKey(stored));
+        if (stored.getAge() != null) byAge.add(ageKey(stored)); // users without an age match no age range
         return user;
     }
 
+    /** Copies every user; prefer findPage or iterateAfter for large stores. */
     public List<User> findAll() {
         return new ArrayList<>(storage.values());
     }
@@ -166,6 +271,70 @@ class UserRepository {
     public Optional<User> findById(Long id) {
         return Optional.ofNullable(storage.get(id));
     }
+
+    /** Live, weakly consistent view of the users with ids after the cursor (all users if null). */
+    public Iterable<User> iterateAfter(Long cursor) {
+        return (cursor == null) ? storage.values() : storage.tailMap(cursor, false).values();
+    }
+
+    /** Up to limit users with ids after the cursor, in id order. */
+    public UserPage findPage(Long cursor, int limit) {
+        List<User> items = new ArrayList<>(limit);
+        Iterator<User> it = iterateAfter(cursor).iterator();
+        while (items.size() < limit && it.hasNext()) {
+            items.add(it.next());
+        }
+        Long next = (it.hasNext() && !items.isEmpty()) ? items.get(items.size() - 1).getId() : null;
+        return new UserPage(items, next);
+    }
+
+    /** Up to limit users whose name starts with prefix, ignoring case, ordered by name. */
+    public List<User> findByNamePrefix(String prefix, int limit) {
+        String p = normalize(prefix);
+        List<User> result = new ArrayList<>();
+        for (NameKey key : byName.tailSet(new NameKey(p, Long.MIN_VALUE))) {
+            if (result.size() == limit || !key.name().startsWith(p)) break;
+            User user = storage.get(key.id());
+            if (user != null) result.add(user);
+        }
+        return result;
+    }
+
+    /** Up to limit users aged minAge..maxAge inclusive, youngest first. */
+    public List<User> findByAgeBetween(int minAge, int maxAge, int limit) {
+        List<User> result = new ArrayList<>();
+        if (minAge > maxAge) return result;
+        for (AgeKey key : byAge.subSet(new AgeKey(minAge, Long.MIN_VALUE), true,
+                new AgeKey(maxAge, Long.MAX_VALUE), true)) {
+            if (result.size() == limit) break;
+            User user = storage.get(key.id());
+            if (user != null) result.add(user);
+        }
+        return result;
+    }
+
+    public int count() {
+        return storage.size();
+    }
+
+    private static NameKey nameKey(User user) {
+        return new NameKey(normalize(user.getName()), user.getId());
+    }
+
+    private static AgeKey ageKey(User user) {
+        return new AgeKey(user.getAge(), user.getId());
+    }
+
+    private static String normalize(String name) {
+        return (name == null) ? "" : name.toLowerCase(Locale.ROOT);
+    }
+}
+
+/** One page of users; nextCursor is the id to pass for the following page, or null on the last one. */
+record UserPage(List<User> items, Long nextCursor) {
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
 }
 
 // ---------- ENTITY ----------
@@ -280,16 +449,32 @@ class ScheduledTasks {
 }
 
 // ---------- ASPECT ----------
+/**
+ * Logs service calls that are slow, plus a random sample of the rest; logging every call would cost
+ * more than the calls themselves. Per-method latency histograms live in the AOP demo (MethodMetrics).
+ */
 @Aspect
 @Component
 class LoggingAspect {
 
+    private static final long SLOW_NANOS = 500_000_000L;
+    private static final int SAMPLE_EVERY = 1000;
+
     @Around("execution(* com.example.demo.SampleService.*(..))")
     public Object log(ProceedingJoinPoint joinPoint) throws Throwable {
-        System.out.println("Before method: " + joinPoint.getSignature().getName());
-        Object result = joinPoint.proceed();
-        System.out.println("After method: " + joinPoint.getSignature().getName());
-        return result;
+        long start = System.nanoTime();
+        try {
+            return joinPoint.proceed();
+        } finally {
+            long nanos = System.nanoTime() - start;
+            if (nanos >= SLOW_NANOS) {
+                System.out.println("Slow method: " + joinPoint.getSignature().getName()
+                        + " took " + nanos / 1_000_000 + "ms");
+            } else if (ThreadLocalRandom.current().nextInt(SAMPLE_EVERY) == 0) {
+                System.out.println("Sampled method: " + joinPoint.getSignature().getName()
+                        + " took " + nanos / 1_000 + "us");
+            }
+        }
     }
 }
 